@@ -4,6 +4,7 @@ import java.io.*;
 import java.net.*;
 import javax.swing.event.DocumentListener;
 import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
 import java.util.LinkedList;
 
 public class DocumentClient extends JFrame {
@@ -15,9 +16,12 @@ public class DocumentClient extends JFrame {
     private JButton saveButton;
     private JButton loadButton;
     private JButton rollbackButton; // New rollback button
-    private ObjectOutputStream output;
+    private JCheckBox crdtModeBox;
+    private JButton searchButton;
+    private MessageWriter output;
     private ObjectInputStream input;
     private Socket socket;
+    private final int serverPort;                // 5000 for the server, or the port of a read-only relay
     private String username;
     private String currentDocId = null;
     private boolean isConnected = false;
@@ -26,8 +30,29 @@ public class DocumentClient extends JFrame {
     private volatile boolean running = false;
     private LinkedList<String> documentHistory;  // To store document versions for rollback
     private int historyIndex;                    // To track the current version
+    private RgaText crdt;                        // Local replica while a CRDT document is open
+    private long throttledUntil;                 // Set when the server asks this client to back off
+    private Timer deferredUpdate;                // Sends the latest content once the back off is over
+
+    // Applies remote CRDT operations to the text area without a round trip
+    private final RgaText.Listener remoteEdits = new RgaText.Listener() {
+        @Override
+        public void inserted(int position, String text) {
+            documentArea.insert(text, position);
+        }
+
+        @Override
+        public void deleted(int position, int length) {
+            documentArea.replaceRange(null, position, position + length);
+        }
+    };
 
     public DocumentClient() {
+        this(5000);
+    }
+
+    public DocumentClient(int serverPort) {
+        this.serverPort = serverPort;
         setupUI();
         documentHistory = new LinkedList<>();
         historyIndex = -1;  // No history yet
@@ -50,6 +75,10 @@ public class DocumentClient extends JFrame {
         loadButton = new JButton("Load Document");
         rollbackButton = new JButton("Rollback");
         rollbackButton.setEnabled(false);  // Disable initially
+        crdtModeBox = new JCheckBox("CRDT mode");
+        searchButton = new JButton("Search");
+        searchButton.setEnabled(false);
+        crdtModeBox.setToolTipText("New documents merge edits locally instead of on the server");
 
         JPanel mainPanel = new JPanel(new BorderLayout());
         mainPanel.add(new JScrollPane(documentArea), BorderLayout.CENTER);
@@ -62,9 +91,11 @@ public class DocumentClient extends JFrame {
         JPanel buttonPanel = new JPanel();
         buttonPanel.add(connectButton);
         buttonPanel.add(openDocButton);
+        buttonPanel.add(crdtModeBox);
         buttonPanel.add(saveButton);
         buttonPanel.add(loadButton);
         buttonPanel.add(rollbackButton); // Add rollback button to panel
+        buttonPanel.add(searchButton);
 
         mainPanel.add(rightPanel, BorderLayout.EAST);
         mainPanel.add(buttonPanel, BorderLayout.NORTH);
@@ -76,9 +107,10 @@ public class DocumentClient extends JFrame {
         saveButton.addActionListener(e -> handleSaveDocument());
         loadButton.addActionListener(e -> handleLoadDocument());
         rollbackButton.addActionListener(e -> handleRollback()); // Rollback button action
+        searchButton.addActionListener(e -> handleSearch());
 
         documentArea.getDocument().addDocumentListener(new DocumentListener() {
-            private void handleChange() {
+            private void handleChange(DocumentEvent event) {
                 if (!isUpdatingFromServer && isConnected) {
                     try {
                         String content = documentArea.getText();
@@ -90,7 +122,11 @@ public class DocumentClient extends JFrame {
                         }
                         historyIndex++;
                         updateRollbackButtonState();  // Update the rollback button state
-                        sendMessage(new Message(MessageType.UPDATE_CONTENT, username, content));
+                        if (crdt != null) {
+                            sendCrdtOperation(event);
+                        } else {
+                            sendContentUpdate(content);
+                        }
                     } catch (IOException e) {
                         e.printStackTrace();
                         handleConnectionError();
@@ -99,11 +135,11 @@ public class DocumentClient extends JFrame {
             }
 
             @Override
-            public void insertUpdate(DocumentEvent e) { handleChange(); }
+            public void insertUpdate(DocumentEvent e) { handleChange(e); }
             @Override
-            public void removeUpdate(DocumentEvent e) { handleChange(); }
+            public void removeUpdate(DocumentEvent e) { handleChange(e); }
             @Override
-            public void changedUpdate(DocumentEvent e) { handleChange(); }
+            public void changedUpdate(DocumentEvent e) { handleChange(e); }
         });
     }
 
@@ -133,7 +169,9 @@ public class DocumentClient extends JFrame {
                 while ((line = reader.readLine()) != null) {
                     content.append(line).append("\n");
                 }
-                isUpdatingFromServer = true; // Temporarily mark as updating to avoid sending updates to the server
+                // Temporarily mark as updating to avoid sending updates to the server, except for a CRDT
+                // document whose replica has to see the load as edits to stay in sync with the text area
+                isUpdatingFromServer = crdt == null;
                 documentArea.setText(content.toString());
                 isUpdatingFromServer = false; // Reset this flag to allow future edits to be sent
                 documentArea.setEnabled(true); // Ensure the text area is enabled for editing
@@ -146,8 +184,8 @@ public class DocumentClient extends JFrame {
     }
 
     private void setupNetworking() throws IOException {
-        socket = new Socket("localhost", 5000);
-        output = new ObjectOutputStream(socket.getOutputStream());
+        socket = new Socket("localhost", serverPort);
+        output = new MessageWriter(socket.getOutputStream());
         input = new ObjectInputStream(socket.getInputStream());
         running = true;
 
@@ -178,6 +216,7 @@ public class DocumentClient extends JFrame {
                     isConnected = true;
                     connectButton.setText("Disconnect");
                     openDocButton.setEnabled(true);
+                    searchButton.setEnabled(true);
                     setTitle("Collaborative Document Editor - " + username);
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -198,9 +237,12 @@ public class DocumentClient extends JFrame {
                 if (currentDocId != null && !currentDocId.equals(docId)) {
                     sendMessage(new Message(MessageType.REMOVE_USER, username, currentDocId));
                 }
-                sendMessage(new Message(MessageType.OPEN_DOCUMENT, username, docId));
+                MessageType openType = crdtModeBox.isSelected() ? MessageType.OPEN_CRDT_DOCUMENT : MessageType.OPEN_DOCUMENT;
+                Message openMessage = new Message(openType, username, docId);
+                openMessage.setDocId(docId);
+                sendMessage(openMessage);
                 currentDocId = docId;
-                documentArea.setEnabled(true);
+                documentArea.setEnabled(false); // Until the server sends the document
                 saveButton.setEnabled(true);
             } catch (IOException e) {
                 e.printStackTrace();
@@ -210,14 +252,129 @@ public class DocumentClient extends JFrame {
     }
 
     private void sendMessage(Message message) throws IOException {
-        synchronized (output) {
-            output.writeObject(message);
-            output.flush();
+        if (message.getDocId() == null && message.getType().isDocumentScoped()) {
+            message.setDocId(currentDocId);
+        }
+        output.send(message);
+    }
+
+    private void sendContentUpdate(String content) throws IOException {
+        long delay = throttledUntil - System.currentTimeMillis();
+        if (delay > 0) {
+            if (deferredUpdate == null) {
+                deferredUpdate = new Timer((int) delay, e -> sendDeferredUpdate());
+                deferredUpdate.setRepeats(false);
+                deferredUpdate.start();
+            }
+            return;
+        }
+        sendMessage(new Message(MessageType.UPDATE_CONTENT, username, content));
+    }
+
+    private void sendDeferredUpdate() {
+        deferredUpdate = null;
+        if (isConnected && crdt == null && currentDocId != null) {
+            try {
+                sendMessage(new Message(MessageType.UPDATE_CONTENT, username, documentArea.getText()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                handleConnectionError();
+            }
+        }
+    }
+
+    private void handleThrottle(String content, String docId) {
+        String[] parts = content.split(",");
+        long retryAfter = Long.parseLong(parts[1]);
+        throttledUntil = System.currentTimeMillis() + retryAfter;
+        if (parts[0].startsWith("OPEN_")) {
+            // The document was not opened, keep it read-only and ask again once the server allows it
+            documentArea.setEnabled(false);
+            Timer retry = new Timer((int) retryAfter + 1, e -> resendOpen(MessageType.valueOf(parts[0]), docId));
+            retry.setRepeats(false);
+            retry.start();
+        } else if (!parts[0].equals(MessageType.UPDATE_CONTENT.name()) && !parts[0].startsWith("CRDT_")) {
+            // Edits are merged or delayed by the server, anything else was dropped
+            JOptionPane.showMessageDialog(this, "Server is busy, please retry in " + Math.max(1, retryAfter) + " ms.");
+        }
+    }
+
+    private void resendOpen(MessageType openType, String docId) {
+        if (isConnected && docId != null && docId.equals(currentDocId)) {
+            try {
+                Message openMessage = new Message(openType, username, docId);
+                openMessage.setDocId(docId);
+                sendMessage(openMessage);
+            } catch (IOException e) {
+                e.printStackTrace();
+                handleConnectionError();
+            }
         }
     }
 
+    private void handleSearch() {
+        String query = JOptionPane.showInputDialog("Search all documents for:");
+        if (query != null && !query.trim().isEmpty()) {
+            try {
+                sendMessage(new Message(MessageType.SEARCH, username, query.trim()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                handleConnectionError();
+            }
+        }
+    }
+
+    private void showSearchResults(String results) {
+        if (results.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No documents found.");
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        for (String line : results.split("\n")) {
+            String[] parts = line.split("\t", 2);
+            text.append(parts[0]).append(": ").append(parts.length > 1 ? parts[1] : "").append("\n");
+        }
+        JOptionPane.showMessageDialog(this, text.toString(), "Search Results", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    // Turns a local edit, already visible in the text area, into an operation on the replica
+    private void sendCrdtOperation(DocumentEvent event) throws IOException {
+        if (event.getType() == DocumentEvent.EventType.INSERT) {
+            try {
+                String text = documentArea.getText(event.getOffset(), event.getLength());
+                sendMessage(new Message(MessageType.CRDT_INSERT, username, crdt.localInsert(event.getOffset(), text)));
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        } else if (event.getType() == DocumentEvent.EventType.REMOVE) {
+            String op = crdt.localDelete(event.getOffset(), event.getLength());
+            if (op != null) {
+                sendMessage(new Message(MessageType.CRDT_DELETE, username, op));
+            }
+        }
+    }
+
+    private void showContent(String content) {
+        isUpdatingFromServer = true;
+        documentArea.setText(content);
+        isUpdatingFromServer = false;
+    }
+
+    private void loadCrdtSnapshot(String content) {
+        int separator = content.indexOf('|');
+        crdt = RgaText.fromSnapshot(Integer.parseInt(content.substring(0, separator)), content.substring(separator + 1));
+        crdt.setListener(remoteEdits);
+        isUpdatingFromServer = true;
+        documentArea.setText(crdt.getText());
+        isUpdatingFromServer = false;
+    }
+
     private void handleServerMessage(Message message) {
         SwingUtilities.invokeLater(() -> {
+            // Late messages from a document this window has already switched away from
+            if (message.getDocId() != null && !message.getDocId().equals(currentDocId)) {
+                return;
+            }
             try {
                 switch (message.getType()) {
                     case CONNECT_ACK:
@@ -225,15 +382,56 @@ public class DocumentClient extends JFrame {
                         break;
 
                     case DOCUMENT_CONTENT:
+                        crdt = null;
+                        showContent(message.getContent());
+                        documentArea.setEnabled(true);
+                        break;
+
                     case UPDATE_CONTENT:
-                        isUpdatingFromServer = true;
-                        documentArea.setText(message.getContent());
-                        isUpdatingFromServer = false;
+                        showContent(message.getContent());
                         break;
 
                     case UPDATE_USERS:
                         updateUsersList(message.getContent().split(","));
                         break;
+
+                    case READ_ONLY:
+                        documentArea.setEditable(false);
+                        setTitle(getTitle() + " (read-only)");
+                        break;
+
+                    case ERROR:
+                        JOptionPane.showMessageDialog(this, message.getContent(), "Server Error", JOptionPane.ERROR_MESSAGE);
+                        break;
+
+                    case THROTTLE:
+                        handleThrottle(message.getContent(), message.getDocId());
+                        break;
+
+                    case SEARCH_RESULTS:
+                        showSearchResults(message.getContent());
+                        break;
+
+                    case CRDT_SNAPSHOT:
+                        loadCrdtSnapshot(message.getContent());
+                        documentArea.setEnabled(true);
+                        break;
+
+                    case CRDT_INSERT:
+                    case CRDT_DELETE:
+                        if (crdt != null) {
+                            isUpdatingFromServer = true;
+                            try {
+                                if (message.getType() == MessageType.CRDT_INSERT) {
+                                    crdt.applyInsert(message.getContent());
+                                } else {
+                                    crdt.applyDelete(message.getContent());
+                                }
+                            } finally {
+                                isUpdatingFromServer = false;
+                            }
+                        }
+                        break;
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -253,6 +451,11 @@ public class DocumentClient extends JFrame {
     private void handleDisconnect() {
         running = false;
         isConnected = false;
+        crdt = null;
+        if (deferredUpdate != null) {
+            deferredUpdate.stop();
+            deferredUpdate = null;
+        }
 
         if (messageListenerThread != null) {
             messageListenerThread.interrupt();
@@ -274,7 +477,9 @@ public class DocumentClient extends JFrame {
         SwingUtilities.invokeLater(() -> {
             connectButton.setText("Connect");
             openDocButton.setEnabled(false);
+            searchButton.setEnabled(false);
             documentArea.setEnabled(false);
+            documentArea.setEditable(true);
             documentArea.setText("");
             usersListModel.clear();
             setTitle("Collaborative Document Editor");
@@ -308,7 +513,7 @@ public class DocumentClient extends JFrame {
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
-            DocumentClient client = new DocumentClient();
+            DocumentClient client = args.length > 0 ? new DocumentClient(Integer.parseInt(args[0])) : new DocumentClient();
             client.setVisible(true);
         });
     }
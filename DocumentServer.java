@@ -2,6 +2,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 class Document {
@@ -12,14 +13,43 @@ class Document {
     private ReentrantLock lock;
     private LinkedList<String> versionHistory; // To store versions of document
     private static final int MAX_VERSIONS = 10; // Maximum number of versions to keep
+    private final RgaText crdt; // Only set for documents edited through CRDT operations
+    private final SearchIndex searchIndex;
+    private volatile String upstreamUsers; // Users reported by the server above when this is a relay copy
+    private final RateLimiter editLimiter =
+            new RateLimiter(DocumentServer.DOC_MESSAGES_PER_SECOND, DocumentServer.DOC_BYTES_PER_SECOND);
 
     public Document(String id) {
+        this(id, false, null);
+    }
+
+    public Document(String id, boolean crdtMode, SearchIndex searchIndex) {
+        this(id, crdtMode ? new RgaText(0) : null, searchIndex);
+    }
+
+    // Used by relays, whose CRDT copy starts from the upstream snapshot
+    Document(String id, RgaText crdt, SearchIndex searchIndex) {
         this.id = id;
         this.content = new StringBuilder();
         this.activeUsers = ConcurrentHashMap.newKeySet();
         this.connectedClients = ConcurrentHashMap.newKeySet();
         this.lock = new ReentrantLock();
         this.versionHistory = new LinkedList<>();
+        this.crdt = crdt;
+        this.searchIndex = searchIndex;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isCrdt() {
+        return crdt != null;
+    }
+
+    // Shared by every editor of the document, so one hot document cannot starve the others
+    public RateLimiter getEditLimiter() {
+        return editLimiter;
     }
 
     public void updateContent(String newContent) {
@@ -36,11 +66,23 @@ class Document {
         } finally {
             lock.unlock();
         }
+        contentChanged();
+    }
+
+    private void contentChanged() {
+        if (searchIndex != null) {
+            searchIndex.markDirty(id);
+        }
     }
     
     
 
     public String getContent() {
+        if (crdt != null) {
+            synchronized (crdt) {
+                return crdt.getText();
+            }
+        }
         lock.lock();
         try {
             return content.toString();
@@ -65,6 +107,36 @@ class Document {
         broadcastActiveUsers();
     }
 
+    // Joins a CRDT document. The snapshot is sent under the same lock that orders operations,
+    // so the new client sees every later operation after its snapshot.
+    public void openCrdt(String username, ClientHandler handler, int siteId) throws IOException {
+        synchronized (crdt) {
+            addUser(username, handler);
+            Message snapshot = new Message(MessageType.CRDT_SNAPSHOT, "Server", siteId + "|" + crdt.snapshot());
+            snapshot.setDocId(id);
+            handler.sendMessage(snapshot);
+        }
+    }
+
+    // Applies an operation to the server replica and relays it, the server does not arbitrate.
+    // The lock only orders apply and enqueue: sendMessage never waits on a subscriber's socket.
+    public void applyCrdtOperation(Message message, ClientHandler sender) {
+        synchronized (crdt) {
+            if (message.getType() == MessageType.CRDT_INSERT) {
+                crdt.applyInsert(message.getContent());
+            } else {
+                crdt.applyDelete(message.getContent());
+            }
+            broadcastUpdate(message, sender);
+        }
+        contentChanged();
+    }
+
+    public void setUpstreamUsers(String users) {
+        upstreamUsers = users;
+        broadcastActiveUsers();
+    }
+
     public Set<String> getActiveUsers() {
         return new HashSet<>(activeUsers);
     }
@@ -83,7 +155,11 @@ class Document {
 
     private void broadcastActiveUsers() {
         String userList = String.join(",", activeUsers);
+        if (upstreamUsers != null && !upstreamUsers.isEmpty()) {
+            userList = userList.isEmpty() ? upstreamUsers : upstreamUsers + "," + userList;
+        }
         Message updateMessage = new Message(MessageType.UPDATE_USERS, "Server", userList);
+        updateMessage.setDocId(id);
         for (ClientHandler client : connectedClients) {
             try {
                 client.sendMessage(updateMessage);
@@ -109,24 +185,44 @@ class Document {
         } finally {
             lock.unlock();
         }
+        contentChanged();
     }
 }
 
 public class DocumentServer {
     private static final int PORT = 5000;
+    static final int MAX_SEARCH_RESULTS = 20;
+    // Admission limits, traffic over them is coalesced, delayed or answered with THROTTLE
+    static final int CLIENT_MESSAGES_PER_SECOND = Integer.getInteger("document.clientMessagesPerSecond", 50);
+    static final int CLIENT_BYTES_PER_SECOND = Integer.getInteger("document.clientBytesPerSecond", 256 * 1024);
+    static final int DOC_MESSAGES_PER_SECOND = Integer.getInteger("document.docMessagesPerSecond", 200);
+    static final int DOC_BYTES_PER_SECOND = Integer.getInteger("document.docBytesPerSecond", 1024 * 1024);
+    private final int port;
     private ServerSocket serverSocket;
+    private RelayUpstream upstream; // Only set when this process relays documents from another server
     private ConcurrentHashMap<String, Document> documents;
     private ExecutorService executorService;
+    private SearchIndex searchIndex;
+    private final AtomicInteger nextSiteId = new AtomicInteger(1); // Site 0 is the server replica
 
     public DocumentServer() {
+        this(PORT);
+    }
+
+    public DocumentServer(int port) {
+        this.port = port;
         documents = new ConcurrentHashMap<>();
         executorService = Executors.newCachedThreadPool();
+        searchIndex = new SearchIndex(docId -> {
+            Document doc = documents.get(docId);
+            return doc == null ? null : doc.getContent();
+        });
     }
 
     public void start() {
         try {
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("Server started on port " + PORT);
+            serverSocket = new ServerSocket(port);
+            System.out.println((upstream == null ? "Server" : "Relay") + " started on port " + port);
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
@@ -139,39 +235,115 @@ public class DocumentServer {
     }
 
     public Document getDocument(String docId) {
-        return documents.computeIfAbsent(docId, id -> new Document(id));
+        return getDocument(docId, false);
+    }
+
+    // The mode only applies when the document is created, an existing document keeps its own
+    public Document getDocument(String docId, boolean crdtMode) {
+        if (upstream != null) {
+            Document doc = upstream.subscribe(docId, crdtMode); // null if the server above did not answer
+            if (doc != null) {
+                documents.putIfAbsent(docId, doc);
+            }
+            return doc;
+        }
+        return documents.computeIfAbsent(docId, id -> new Document(id, crdtMode, searchIndex));
+    }
+
+    // Turns this server into a read-only relay of the documents on the server at host:port
+    public void relayFrom(String host, int upstreamPort) throws IOException {
+        upstream = new RelayUpstream(host, upstreamPort, "relay@" + port, this);
+        Thread upstreamThread = new Thread(upstream, "relay-upstream");
+        upstreamThread.setDaemon(true);
+        upstreamThread.start();
+    }
+
+    public boolean isRelay() {
+        return upstream != null;
+    }
+
+    // Called when a relay loses its upstream: viewers are told their copy is stale and the copies
+    // are dropped, so the next open subscribes again
+    void dropRelayedDocuments(String reason) {
+        for (Document doc : documents.values()) {
+            dropRelayedDocument(doc, reason);
+        }
     }
 
-    public static void main(String[] args) {
-        new DocumentServer().start();
+    void dropRelayedDocument(Document doc, String reason) {
+        documents.remove(doc.getId(), doc);
+        searchIndex.markDirty(doc.getId()); // Takes it out of the index
+        Message error = new Message(MessageType.ERROR, "Server", reason);
+        error.setDocId(doc.getId());
+        doc.broadcastUpdate(error, null);
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    public void execute(Runnable task) {
+        executorService.execute(task);
+    }
+
+    public int nextSiteId() {
+        return nextSiteId.getAndIncrement();
+    }
+
+    // No arguments starts the primary server, "<port> <upstream host> <upstream port>" starts a relay
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3) {
+            DocumentServer relay = new DocumentServer(Integer.parseInt(args[0]));
+            relay.relayFrom(args[1], Integer.parseInt(args[2]));
+            relay.start();
+        } else {
+            new DocumentServer().start();
+        }
     }
 }
 
 class ClientHandler implements Runnable {
+    // Only times pending updates, applying them runs on the server's executor
+    private static final ScheduledExecutorService throttleScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "throttle-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
     private Socket clientSocket;
     private DocumentServer server;
-    private ObjectOutputStream output;
+    private MessageWriter output;
     private ObjectInputStream input;
     private String username;
-    private String currentDocId;
-    private Document currentDoc;
+    private String currentDocId; // Channel used by messages that do not name a document
+    private final Map<String, Document> openDocuments = new ConcurrentHashMap<>(); // One channel per document
+    private final int siteId;
+    private final RateLimiter rateLimiter =
+            new RateLimiter(DocumentServer.CLIENT_MESSAGES_PER_SECOND, DocumentServer.CLIENT_BYTES_PER_SECOND);
+    // Latest UPDATE_CONTENT per document held back by the rate limit, guarded by this
+    private final Map<Document, Message> pendingUpdates = new HashMap<>();
 
     public ClientHandler(Socket socket, DocumentServer server) {
         this.clientSocket = socket;
         this.server = server;
+        this.siteId = server.nextSiteId();
     }
 
+    // Only queues the message for the connection's writer thread, so it is safe to call while
+    // holding a document lock
     public void sendMessage(Message message) throws IOException {
-        synchronized (output) {
-            output.writeObject(message);
-            output.flush();
-        }
+        output.send(message);
+    }
+
+    private void sendMessage(MessageType type, String content, String docId) throws IOException {
+        Message message = new Message(type, "Server", content);
+        message.setDocId(docId);
+        sendMessage(message);
     }
 
     @Override
     public void run() {
         try {
-            output = new ObjectOutputStream(clientSocket.getOutputStream());
+            output = new MessageWriter(clientSocket.getOutputStream());
             input = new ObjectInputStream(clientSocket.getInputStream());
 
             while (true) {
@@ -180,63 +352,231 @@ class ClientHandler implements Runnable {
             }
         } catch (IOException | ClassNotFoundException e) {
             handleDisconnect();
+        } catch (RuntimeException e) {
+            // A bug while handling one message must still release the user's documents
+            e.printStackTrace();
+            handleDisconnect();
         }
     }
 
     private void handleMessage(Message message) throws IOException {
+        // Route to a channel: the document named by the message, or the last opened one for older clients
+        if (message.getType() == MessageType.OPEN_DOCUMENT || message.getType() == MessageType.OPEN_CRDT_DOCUMENT) {
+            message.setDocId(message.getContent());
+        } else if (message.getDocId() == null && message.getType().isDocumentScoped()) {
+            message.setDocId(currentDocId);
+        }
+        String docId = message.getDocId();
+        Document doc = docId == null ? null : openDocuments.get(docId);
+
+        if (server.isRelay() && (message.getType() == MessageType.UPDATE_CONTENT
+                || message.getType() == MessageType.CRDT_INSERT || message.getType() == MessageType.CRDT_DELETE
+                || message.getType() == MessageType.ROLLBACK_DOCUMENT)) {
+            sendMessage(MessageType.ERROR, "Documents are read-only on a relay", docId);
+            return;
+        }
+
+        boolean coalescable = message.getType() == MessageType.UPDATE_CONTENT && doc != null && !doc.isCrdt();
+        if (coalescable && replacePendingUpdate(doc, message)) {
+            return; // Charged once, when the pending update is applied
+        }
+        long wait = admit(message, doc);
+        if (coalescable && wait > 0) {
+            coalesceUpdate(doc, message, wait);
+            return;
+        }
+        if (wait > 0) {
+            sendMessage(MessageType.THROTTLE, message.getType() + "," + TimeUnit.NANOSECONDS.toMillis(wait), docId);
+            if (message.getType() != MessageType.CRDT_INSERT && message.getType() != MessageType.CRDT_DELETE) {
+                return; // Shed
+            }
+            // Operations can neither be dropped nor merged, so stop reading from this client until
+            // it is back under its limits and let TCP push back on it
+            waitForAdmission(message, doc, wait);
+        }
+
         switch (message.getType()) {
             case CONNECT:
                 username = message.getSender();
                 sendMessage(new Message(MessageType.CONNECT_ACK, "Server", "Connected successfully"));
+                if (server.isRelay()) {
+                    sendMessage(new Message(MessageType.READ_ONLY, "Server", "Documents are read-only on a relay"));
+                }
                 break;
 
             case OPEN_DOCUMENT:
-                currentDocId = message.getContent();
-                currentDoc = server.getDocument(currentDocId);
-                currentDoc.addUser(username, this);
-                sendMessage(new Message(MessageType.DOCUMENT_CONTENT, "Server", currentDoc.getContent()));
+            case OPEN_CRDT_DOCUMENT:
+                doc = server.getDocument(docId, message.getType() == MessageType.OPEN_CRDT_DOCUMENT);
+                if (doc == null) {
+                    sendMessage(MessageType.ERROR, "Document is not available", docId);
+                    break;
+                }
+                currentDocId = docId;
+                openDocuments.put(docId, doc);
+                if (doc.isCrdt()) {
+                    doc.openCrdt(username, this, siteId);
+                } else {
+                    doc.addUser(username, this);
+                    sendMessage(MessageType.DOCUMENT_CONTENT, doc.getContent(), docId);
+                }
                 break;
 
             case UPDATE_CONTENT:
-                if (currentDoc != null) {
-                    currentDoc.updateContent(message.getContent());
-                    currentDoc.broadcastUpdate(message, this);
+                if (doc != null) {
+                    if (doc.isCrdt()) {
+                        sendMessage(MessageType.ERROR, "Document only accepts CRDT operations", docId);
+                        break;
+                    }
+                    doc.updateContent(message.getContent());
+                    doc.broadcastUpdate(message, this);
+                }
+                break;
+
+            case CRDT_INSERT:
+            case CRDT_DELETE:
+                if (doc != null && doc.isCrdt()) {
+                    if (message.getType() == MessageType.CRDT_INSERT && !isOwnInsert(message)) {
+                        sendMessage(MessageType.ERROR, "Invalid CRDT operation", docId);
+                        break;
+                    }
+                    try {
+                        doc.applyCrdtOperation(message, this);
+                    } catch (IllegalArgumentException e) {
+                        sendMessage(MessageType.ERROR, "Invalid CRDT operation", docId);
+                    }
                 }
                 break;
 
             case ROLLBACK_DOCUMENT:
-                if (currentDoc != null) {
+                if (doc != null) {
                     try {
                         int versionIndex = Integer.parseInt(message.getContent()); // Get the version index from the message
 
                         // Ensure versionIndex is valid
-                        if (versionIndex >= 0 && versionIndex < currentDoc.getVersionHistory().size()) {
-                            currentDoc.rollbackToVersion(versionIndex); // Perform the rollback
-                            sendMessage(new Message(MessageType.DOCUMENT_CONTENT, "Server", currentDoc.getContent()));
-                            currentDoc.broadcastUpdate(message, this); // Broadcast the rollback to other users
+                        if (versionIndex >= 0 && versionIndex < doc.getVersionHistory().size()) {
+                            doc.rollbackToVersion(versionIndex); // Perform the rollback
+                            sendMessage(MessageType.DOCUMENT_CONTENT, doc.getContent(), docId);
+                            doc.broadcastUpdate(message, this); // Broadcast the rollback to other users
                         } else {
-                            sendMessage(new Message(MessageType.ERROR, "Server", "Invalid version index"));
+                            sendMessage(MessageType.ERROR, "Invalid version index", docId);
                         }
                     } catch (NumberFormatException e) {
-                        sendMessage(new Message(MessageType.ERROR, "Server", "Invalid version index format"));
+                        sendMessage(MessageType.ERROR, "Invalid version index format", docId);
                     }
                 }
                 break;
 
+            case SEARCH:
+                // One result per line: document id, tab, snippet, best match first
+                StringBuilder results = new StringBuilder();
+                for (SearchIndex.Result result : server.getSearchIndex().search(message.getContent(), DocumentServer.MAX_SEARCH_RESULTS)) {
+                    results.append(result.docId).append('\t').append(result.snippet).append('\n');
+                }
+                sendMessage(new Message(MessageType.SEARCH_RESULTS, "Server", results.toString()));
+                break;
+
             case REMOVE_USER:
-                if (currentDoc != null) {
-                    currentDoc.removeUser(username, this);
-                    currentDocId = null;
-                    currentDoc = null;
+                if (doc != null) {
+                    openDocuments.remove(docId);
+                    cancelPendingUpdate(doc);
+                    doc.removeUser(username, this);
+                    if (docId.equals(currentDocId)) {
+                        currentDocId = null;
+                    }
                 }
                 break;
         }
     }
 
+    // New characters must carry the site assigned to this connection, otherwise a client could
+    // reuse another client's ids. Deletes name existing characters, so they can be on any site.
+    private boolean isOwnInsert(Message message) {
+        String content = message.getContent();
+        return content != null && content.startsWith(siteId + ",");
+    }
+
+    // Returns 0 when the message fits the limits of both the connection and its document,
+    // otherwise the nanoseconds until it would
+    private long admit(Message message, Document doc) {
+        MessageType type = message.getType();
+        if (type == MessageType.CONNECT || type == MessageType.REMOVE_USER) {
+            return 0;
+        }
+        int bytes = message.getContent() == null ? 0 : message.getContent().length();
+        if (doc != null && (type == MessageType.UPDATE_CONTENT || type == MessageType.CRDT_INSERT
+                || type == MessageType.CRDT_DELETE || type == MessageType.ROLLBACK_DOCUMENT)) {
+            return RateLimiter.tryAdmit(rateLimiter, doc.getEditLimiter(), bytes);
+        }
+        return rateLimiter.tryAdmit(bytes);
+    }
+
+    private void waitForAdmission(Message message, Document doc, long wait) throws IOException {
+        try {
+            do {
+                TimeUnit.NANOSECONDS.sleep(wait);
+                wait = admit(message, doc);
+            } while (wait > 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    // A newer update takes the place of the one already waiting for the document, if there is one
+    private synchronized boolean replacePendingUpdate(Document doc, Message message) {
+        if (!pendingUpdates.containsKey(doc)) {
+            return false;
+        }
+        pendingUpdates.put(doc, message);
+        return true;
+    }
+
+    // Full-content updates replace each other, so only the latest one per document is kept while throttled
+    private synchronized void coalesceUpdate(Document doc, Message message, long wait) throws IOException {
+        if (pendingUpdates.put(doc, message) == null) {
+            schedulePendingUpdate(doc, wait);
+            sendMessage(MessageType.THROTTLE, MessageType.UPDATE_CONTENT + "," + TimeUnit.NANOSECONDS.toMillis(wait),
+                    message.getDocId());
+        }
+    }
+
+    // The scheduled apply finds no entry and does nothing
+    private synchronized void cancelPendingUpdate(Document doc) {
+        pendingUpdates.remove(doc);
+    }
+
+    private void schedulePendingUpdate(Document doc, long wait) {
+        throttleScheduler.schedule(() -> server.execute(() -> applyPendingUpdate(doc)), wait, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void applyPendingUpdate(Document doc) {
+        Message update = pendingUpdates.get(doc);
+        if (update == null) {
+            return; // Cancelled
+        }
+        long wait = admit(update, doc);
+        if (wait > 0) {
+            schedulePendingUpdate(doc, wait);
+            return;
+        }
+        try {
+            doc.updateContent(update.getContent());
+            doc.broadcastUpdate(update, this);
+        } finally {
+            // Cleared even if applying failed, otherwise every later update would wait behind it
+            pendingUpdates.remove(doc);
+        }
+    }
+
     private void handleDisconnect() {
-        if (currentDoc != null) {
-            currentDoc.removeUser(username, this);
+        synchronized (this) {
+            pendingUpdates.clear(); // Throttled edits are not applied once the user has left
+        }
+        for (Document doc : openDocuments.values()) {
+            doc.removeUser(username, this);
         }
+        openDocuments.clear();
+        if (output != null) output.close();
         try {
             clientSocket.close();
         } catch (IOException e) {
@@ -244,4 +584,3 @@ class ClientHandler implements Runnable {
         }
     }
 }
-
@@ -10,7 +10,30 @@ enum MessageType {
     CURSOR_POSITION,
     REMOVE_USER,
     ERROR,
-    ROLLBACK_DOCUMENT
+    ROLLBACK_DOCUMENT,
+    OPEN_CRDT_DOCUMENT,
+    CRDT_SNAPSHOT,
+    CRDT_INSERT,
+    CRDT_DELETE,
+    SEARCH,
+    SEARCH_RESULTS,
+    THROTTLE,
+    READ_ONLY;
+
+    // Types that act on the sender's current document when the message does not name one
+    boolean isDocumentScoped() {
+        switch (this) {
+            case UPDATE_CONTENT:
+            case CURSOR_POSITION:
+            case REMOVE_USER:
+            case ROLLBACK_DOCUMENT:
+            case CRDT_INSERT:
+            case CRDT_DELETE:
+                return true;
+            default:
+                return false;
+        }
+    }
 }
 
 class Message implements Serializable {
@@ -21,6 +44,7 @@ class Message implements Serializable {
     private int fontSize;
     private long timestamp;
     private int cursorPosition;
+    private String docId; // Channel of the connection the message belongs to, null for connection-wide messages
 
     // Constructor for messages that don't need font information
     public Message(MessageType type, String sender, String content) {
@@ -51,4 +75,6 @@ class Message implements Serializable {
     public long getTimestamp() { return timestamp; }
     public int getCursorPosition() { return cursorPosition; }
     public void setCursorPosition(int position) { this.cursorPosition = position; }
+    public String getDocId() { return docId; }
+    public void setDocId(String docId) { this.docId = docId; }
 }
@@ -0,0 +1,181 @@
+import java.io.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Buffers the messages written to one connection and sends them to the socket as a single
+// write once the latency window has passed or the batch has reached its byte limit. The socket
+// write happens on the connection's own writer thread, so send() never blocks on a slow peer.
+class MessageWriter {
+    // Latency bound for a buffered message, 0 writes each message as soon as the writer thread wakes
+    static final long FLUSH_DELAY_MICROS = Long.getLong("document.flushDelayMicros", 2000);
+    static final int MAX_BATCH_BYTES = Integer.getInteger("document.maxBatchBytes", 16 * 1024);
+    // A peer that falls this far behind is disconnected instead of holding up its senders
+    static final int MAX_PENDING_BYTES = Integer.getInteger("document.maxPendingBytes", 4 * 1024 * 1024);
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+
+    private final OutputStream socketOutput;
+    private final PendingBuffer pending = new PendingBuffer();
+    private final ObjectOutputStream output;
+    private final long flushDelayMicros;
+    private final int maxBatchBytes;
+    private final Thread writer;
+    // Condition.awaitNanos keeps the microsecond window, Object.wait rounds it up to a millisecond
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private IOException failure; // Set when a write fails or the peer falls too far behind
+    private boolean closed;
+    private long messagesWritten;
+    private volatile long socketWrites;  // Only updated by the writer thread
+    private volatile long bytesWritten;
+
+    public MessageWriter(OutputStream out) throws IOException {
+        this(out, FLUSH_DELAY_MICROS, MAX_BATCH_BYTES);
+    }
+
+    public MessageWriter(OutputStream out, long flushDelayMicros, int maxBatchBytes) throws IOException {
+        this.socketOutput = out;
+        this.flushDelayMicros = flushDelayMicros;
+        this.maxBatchBytes = maxBatchBytes;
+        this.output = new ObjectOutputStream(pending);
+        this.output.flush();
+        // The peer's ObjectInputStream blocks until it sees the stream header
+        writeBatch(pending.take());
+
+        writer = new Thread(this::writeLoop, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void send(Message message) throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            if (closed) {
+                throw new IOException("Writer is closed");
+            }
+            boolean wasEmpty = pending.size() == 0;
+            output.writeObject(message);
+            output.flush(); // Into the pending buffer, not the socket
+            messagesWritten++;
+
+            if (pending.size() > MAX_PENDING_BYTES) {
+                failure = new IOException("Peer is not reading, " + pending.size() + " bytes pending");
+                pending.take();
+                closeSocketOutput();
+                changed.signalAll();
+                throw failure;
+            }
+            if (wasEmpty || pending.size() >= maxBatchBytes) {
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops accepting messages and waits for the writer thread to send what is left and close the
+    // stream, so the caller can close the socket right after without losing the last batch
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join(CLOSE_TIMEOUT_MS); // Bounded, a peer that stopped reading must not hang the caller
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            byte[] batch;
+            lock.lock();
+            try {
+                while (pending.size() == 0 && !closed && failure == null) {
+                    changed.await();
+                }
+                // Let more messages join the batch until the latency bound or the byte limit
+                long remaining = flushDelayMicros * 1000;
+                while (pending.size() < maxBatchBytes && !closed && failure == null && remaining > 0) {
+                    remaining = changed.awaitNanos(remaining);
+                }
+                if (failure != null) {
+                    return;
+                }
+                batch = pending.take();
+                if (batch.length == 0 && closed) {
+                    closeSocketOutput();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writeBatch(batch);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                } finally {
+                    lock.unlock();
+                }
+                closeSocketOutput();
+                return;
+            }
+        }
+    }
+
+    private void writeBatch(byte[] batch) throws IOException {
+        socketOutput.write(batch);
+        socketOutput.flush();
+        socketWrites++;
+        bytesWritten += batch.length;
+    }
+
+    private void closeSocketOutput() {
+        try {
+            socketOutput.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    public long getMessagesWritten() {
+        lock.lock();
+        try {
+            return messagesWritten;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of batches written to the socket, roughly one syscall each
+    public long getSocketWrites() {
+        return socketWrites;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // Serialized messages waiting for the writer thread
+    private static class PendingBuffer extends ByteArrayOutputStream {
+        byte[] take() {
+            byte[] batch = toByteArray();
+            reset();
+            if (buf.length > MAX_BATCH_BYTES * 4) {
+                buf = new byte[1024]; // Give back the memory a burst grew it to
+            }
+            return batch;
+        }
+    }
+}
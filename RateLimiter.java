@@ -0,0 +1,66 @@
+// Token buckets for messages and bytes, refilled continuously and allowed to burst up to one
+// second's worth of traffic. A message is admitted only when both buckets can pay for it.
+class RateLimiter {
+    private final double messagesPerSecond;
+    private final double bytesPerSecond;
+    private double messageTokens;
+    private double byteTokens;
+    private long lastRefill;
+
+    public RateLimiter(double messagesPerSecond, double bytesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.messageTokens = messagesPerSecond;
+        this.byteTokens = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    // Returns 0 and takes the tokens if the message is admitted, otherwise the nanoseconds to wait
+    public synchronized long tryAdmit(int bytes) {
+        long wait = waitFor(bytes);
+        if (wait == 0) {
+            take(bytes);
+        }
+        return wait;
+    }
+
+    // Same as tryAdmit, but the message has to fit both limiters and is charged to both or neither.
+    // Callers always pass the connection's limiter first, so the two locks are taken in one order.
+    public static long tryAdmit(RateLimiter first, RateLimiter second, int bytes) {
+        synchronized (first) {
+            synchronized (second) {
+                long wait = Math.max(first.waitFor(bytes), second.waitFor(bytes));
+                if (wait == 0) {
+                    first.take(bytes);
+                    second.take(bytes);
+                }
+                return wait;
+            }
+        }
+    }
+
+    // Refills the buckets and returns 0 if they can pay for the message, otherwise the nanoseconds to wait
+    private long waitFor(int bytes) {
+        long now = System.nanoTime();
+        double elapsed = (now - lastRefill) / 1e9;
+        lastRefill = now;
+        messageTokens = Math.min(messagesPerSecond, messageTokens + elapsed * messagesPerSecond);
+        byteTokens = Math.min(bytesPerSecond, byteTokens + elapsed * bytesPerSecond);
+
+        double cost = cost(bytes);
+        if (messageTokens >= 1 && byteTokens >= cost) {
+            return 0;
+        }
+        double wait = Math.max((1 - messageTokens) / messagesPerSecond, (cost - byteTokens) / bytesPerSecond);
+        return Math.max(1, (long) (wait * 1e9));
+    }
+
+    private void take(int bytes) {
+        messageTokens -= 1;
+        byteTokens -= cost(bytes);
+    }
+
+    private double cost(int bytes) {
+        return Math.min(bytes, bytesPerSecond); // A message larger than the burst still gets through
+    }
+}
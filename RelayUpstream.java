@@ -0,0 +1,241 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Connection from a relay to the server above it, which can itself be a relay. Each document a
+// viewer opens on the relay is subscribed once over this connection, and every update from above
+// is applied to the relay's read-only copy and fanned out to the relay's own viewers.
+class RelayUpstream implements Runnable {
+    private static final long SUBSCRIBE_TIMEOUT_MS = 10000;
+    private static final int RECONNECT_ATTEMPTS = 10;
+    private static final long MAX_RECONNECT_DELAY_MS = 8000;
+
+    private final String host;
+    private final int port;
+    private final String relayName;
+    private final DocumentServer server;
+    private final SearchIndex searchIndex;
+    private volatile Socket socket;
+    private volatile MessageWriter output;
+    private volatile ObjectInputStream input;
+    private final ConcurrentHashMap<String, CompletableFuture<Document>> subscriptions = new ConcurrentHashMap<>();
+    private final Map<String, String> earlyUsers = new HashMap<>(); // User lists that arrived before the content
+    private volatile boolean connected = true;
+
+    public RelayUpstream(String host, int port, String relayName, DocumentServer server) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.relayName = relayName;
+        this.server = server;
+        this.searchIndex = server.getSearchIndex();
+        connect();
+    }
+
+    private void connect() throws IOException {
+        Socket newSocket = new Socket(host, port);
+        try {
+            output = new MessageWriter(newSocket.getOutputStream());
+            input = new ObjectInputStream(newSocket.getInputStream());
+            output.send(new Message(MessageType.CONNECT, relayName, ""));
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        socket = newSocket;
+        connected = true;
+    }
+
+    // Returns the local copy of a document, subscribing to it upstream the first time,
+    // or null if the server above did not answer
+    public Document subscribe(String docId, boolean crdtMode) {
+        CompletableFuture<Document> subscription = new CompletableFuture<>();
+        CompletableFuture<Document> existing = subscriptions.putIfAbsent(docId, subscription);
+        if (existing != null) {
+            subscription = existing;
+        } else {
+            try {
+                sendOpen(docId, crdtMode ? MessageType.OPEN_CRDT_DOCUMENT : MessageType.OPEN_DOCUMENT);
+            } catch (IOException e) {
+                subscriptions.remove(docId);
+                subscription.completeExceptionally(e);
+            }
+        }
+        try {
+            return subscription.get(SUBSCRIBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            subscriptions.remove(docId, subscription);
+            return null;
+        }
+    }
+
+    private void sendOpen(String docId, MessageType type) throws IOException {
+        if (!connected) {
+            throw new IOException("Upstream connection is closed");
+        }
+        Message open = new Message(type, "Relay", docId);
+        open.setDocId(docId);
+        output.send(open);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                while (true) {
+                    handleMessage((Message) input.readObject());
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Lost connection to upstream server");
+            }
+            disconnected();
+            if (!reconnect()) {
+                // A relay that cannot follow its upstream would only serve stale documents
+                System.err.println("Could not reconnect to upstream server, stopping the relay");
+                System.exit(1);
+            }
+        }
+    }
+
+    // Forgets every subscription, the relayed copies no longer receive updates
+    private void disconnected() {
+        connected = false;
+        output.close();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+        IOException closed = new IOException("Upstream connection is closed");
+        for (CompletableFuture<Document> subscription : subscriptions.values()) {
+            subscription.completeExceptionally(closed);
+        }
+        subscriptions.clear();
+        earlyUsers.clear();
+        server.dropRelayedDocuments("Lost connection to the upstream server, please reopen the document");
+    }
+
+    private boolean reconnect() {
+        long delay = 500;
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            try {
+                connect();
+                System.err.println("Reconnected to upstream server");
+                return true;
+            } catch (IOException e) {
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MS);
+            }
+        }
+        return false;
+    }
+
+    private void completeSubscription(CompletableFuture<Document> subscription, Document doc) {
+        String users = earlyUsers.remove(doc.getId());
+        if (users != null) {
+            doc.setUpstreamUsers(users);
+        }
+        subscription.complete(doc);
+    }
+
+    private void handleMessage(Message message) throws IOException {
+        String docId = message.getDocId();
+        CompletableFuture<Document> subscription = docId == null ? null : subscriptions.get(docId);
+        if (subscription == null) {
+            return;
+        }
+        Document doc = subscription.getNow(null);
+
+        switch (message.getType()) {
+            case DOCUMENT_CONTENT:
+                if (doc == null) {
+                    doc = new Document(docId, false, searchIndex);
+                    doc.updateContent(message.getContent());
+                    completeSubscription(subscription, doc);
+                } else {
+                    // Fresh content after a rollback upstream
+                    doc.updateContent(message.getContent());
+                    Message update = new Message(MessageType.UPDATE_CONTENT, "Server", message.getContent());
+                    update.setDocId(docId);
+                    doc.broadcastUpdate(update, null);
+                }
+                break;
+
+            case CRDT_SNAPSHOT:
+                if (doc == null) {
+                    String content = message.getContent();
+                    // Viewers never create operations, so the relay's replica needs no site of its own
+                    RgaText replica = RgaText.fromSnapshot(0, content.substring(content.indexOf('|') + 1));
+                    completeSubscription(subscription, new Document(docId, replica, searchIndex));
+                }
+                break;
+
+            case UPDATE_CONTENT:
+                if (doc != null) {
+                    doc.updateContent(message.getContent());
+                    doc.broadcastUpdate(message, null);
+                }
+                break;
+
+            case CRDT_INSERT:
+            case CRDT_DELETE:
+                if (doc != null) {
+                    try {
+                        doc.applyCrdtOperation(message, null);
+                    } catch (IllegalArgumentException e) {
+                        e.printStackTrace();
+                    }
+                }
+                break;
+
+            case ROLLBACK_DOCUMENT:
+                // Only the version index is relayed, so ask for the content it produced
+                sendOpen(docId, MessageType.OPEN_DOCUMENT);
+                break;
+
+            case UPDATE_USERS:
+                if (doc != null) {
+                    doc.setUpstreamUsers(message.getContent());
+                } else {
+                    earlyUsers.put(docId, message.getContent());
+                }
+                break;
+
+            case THROTTLE:
+                // The server above shed a subscription or refresh, ask again once it allows it
+                String[] parts = message.getContent().split(",");
+                if (parts[0].startsWith("OPEN_")) {
+                    MessageType type = MessageType.valueOf(parts[0]);
+                    CompletableFuture.runAsync(() -> {
+                        try {
+                            sendOpen(docId, type);
+                        } catch (IOException e) {
+                            subscription.completeExceptionally(e);
+                        }
+                    }, CompletableFuture.delayedExecutor(Long.parseLong(parts[1]) + 1, TimeUnit.MILLISECONDS));
+                }
+                break;
+
+            case ERROR:
+                // The server above refused the document or dropped its own copy, which is how a lost
+                // connection further up reaches this relay. Either way this subscription is over.
+                System.err.println("Upstream error for " + docId + ": " + message.getContent());
+                subscriptions.remove(docId, subscription);
+                earlyUsers.remove(docId);
+                if (doc == null) {
+                    subscription.completeExceptionally(new IOException(message.getContent()));
+                } else {
+                    server.dropRelayedDocument(doc, message.getContent());
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+import java.util.*;
+
+// Replicated text as an RGA sequence CRDT. Every character has an id (counter, site) where the
+// counter is a Lamport clock, so concurrent inserts at the same place are ordered the same way on
+// every replica. Characters typed one after another are stored together as a single run, and a
+// deleted run keeps only its ids (a tombstone) so later operations can still refer to it.
+class RgaText {
+    // Receives the visible changes made by remote operations
+    interface Listener {
+        void inserted(int position, String text);
+        void deleted(int position, int length);
+    }
+
+    private static class Run {
+        int site;
+        int counter;        // Id of the first character, the rest use consecutive counters
+        int originSite;
+        int originCounter;  // Character this run was inserted after
+        int length;
+        StringBuilder text; // null once the run is deleted
+        Run prev;
+        Run next;
+
+        Run(int site, int counter, int originSite, int originCounter, int length, StringBuilder text) {
+            this.site = site;
+            this.counter = counter;
+            this.originSite = originSite;
+            this.originCounter = originCounter;
+            this.length = length;
+            this.text = text;
+        }
+
+        boolean isDeleted() {
+            return text == null;
+        }
+
+        int visibleLength() {
+            return text == null ? 0 : length;
+        }
+    }
+
+    private final int site;
+    private final Run head; // Root with id (0, 0), every insert at the start of the text refers to it
+    private final Map<Integer, TreeMap<Integer, Run>> index = new HashMap<>();
+    private int clock;
+    private int visibleLength;
+    private Listener listener;
+
+    public RgaText(int site) {
+        this.site = site;
+        this.head = new Run(0, 0, 0, 0, 1, null);
+        addToIndex(head);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public String getText() {
+        StringBuilder result = new StringBuilder(visibleLength);
+        for (Run run = head.next; run != null; run = run.next) {
+            if (!run.isDeleted()) {
+                result.append(run.text);
+            }
+        }
+        return result.toString();
+    }
+
+    public int length() {
+        return visibleLength;
+    }
+
+    // Inserts text typed locally at a visible position and returns the operation to relay
+    public String localInsert(int position, String text) {
+        if (position < 0 || position > visibleLength) {
+            throw new IndexOutOfBoundsException("Invalid position " + position);
+        }
+        int originSite = 0;
+        int originCounter = 0;
+        if (position > 0) {
+            Run run = head.next;
+            int offset = position - 1;
+            while (offset >= run.visibleLength()) {
+                offset -= run.visibleLength();
+                run = run.next;
+            }
+            originSite = run.site;
+            originCounter = run.counter + offset;
+        }
+        int counter = clock + 1;
+        integrate(site, counter, originSite, originCounter, text);
+        return site + "," + counter + "," + originSite + "," + originCounter + "," + text;
+    }
+
+    // Deletes a visible range locally and returns the operation to relay, or null if it was empty
+    public String localDelete(int position, int length) {
+        if (position < 0 || length < 0 || position + length > visibleLength) {
+            throw new IndexOutOfBoundsException("Invalid range " + position + "+" + length);
+        }
+        StringBuilder op = new StringBuilder();
+        Run run = head.next;
+        while (length > 0) {
+            if (position >= run.visibleLength()) {
+                position -= run.visibleLength();
+                run = run.next;
+                continue;
+            }
+            if (position > 0) {
+                run = split(run, position);
+                position = 0;
+            }
+            if (length < run.length) {
+                split(run, length);
+            }
+            if (op.length() > 0) {
+                op.append(';');
+            }
+            op.append(run.site).append(',').append(run.counter).append(',').append(run.length);
+            length -= run.length;
+            markDeleted(run);
+            run = run.next;
+        }
+        return op.length() == 0 ? null : op.toString();
+    }
+
+    // Applies an insert relayed from another site, ignoring it if it has been seen before
+    public void applyInsert(String op) {
+        String[] parts = op.split(",", 5);
+        if (parts.length != 5 || parts[4].isEmpty()) {
+            throw new IllegalArgumentException("Invalid insert operation");
+        }
+        int opSite = Integer.parseInt(parts[0]);
+        int counter = Integer.parseInt(parts[1]);
+        if (find(opSite, counter) != null) {
+            return;
+        }
+        int position = integrate(opSite, counter, Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), parts[4]);
+        if (listener != null) {
+            listener.inserted(position, parts[4]);
+        }
+    }
+
+    // Applies a delete relayed from another site, characters already deleted are skipped
+    public void applyDelete(String op) {
+        String[] spans = op.split(";");
+        int[][] ranges = new int[spans.length][];
+        // Every character has to be known before anything is deleted, so a bad operation changes nothing
+        for (int i = 0; i < spans.length; i++) {
+            String[] parts = spans[i].split(",");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid delete operation");
+            }
+            int opSite = Integer.parseInt(parts[0]);
+            int start = Integer.parseInt(parts[1]);
+            int end = start + Integer.parseInt(parts[2]);
+            for (int counter = start; counter < end; ) {
+                Run run = find(opSite, counter);
+                if (run == null || run == head) {
+                    throw new IllegalArgumentException("Unknown character " + opSite + ":" + counter);
+                }
+                counter = run.counter + run.length;
+            }
+            ranges[i] = new int[] {opSite, start, end};
+        }
+
+        for (int[] range : ranges) {
+            int opSite = range[0];
+            int counter = range[1];
+            int end = range[2];
+            while (counter < end) {
+                Run run = find(opSite, counter);
+                if (run.isDeleted()) {
+                    counter = run.counter + run.length;
+                    continue;
+                }
+                if (run.counter < counter) {
+                    run = split(run, counter - run.counter);
+                }
+                if (run.counter + run.length > end) {
+                    split(run, end - run.counter);
+                }
+                counter += run.length;
+                int position = positionOf(run);
+                int length = run.length;
+                markDeleted(run);
+                if (listener != null) {
+                    listener.deleted(position, length);
+                }
+            }
+        }
+    }
+
+    // Serializes every run, tombstones included, so a new replica can be built from it
+    public String snapshot() {
+        StringBuilder result = new StringBuilder();
+        for (Run run = head.next; run != null; run = run.next) {
+            result.append(run.site).append(',').append(run.counter).append(',')
+                    .append(run.originSite).append(',').append(run.originCounter).append(',')
+                    .append(run.length).append(',').append(run.isDeleted() ? 'd' : 'v').append(':');
+            if (!run.isDeleted()) {
+                result.append(run.text);
+            }
+        }
+        return result.toString();
+    }
+
+    public static RgaText fromSnapshot(int site, String snapshot) {
+        RgaText text = new RgaText(site);
+        Run last = text.head;
+        int i = 0;
+        while (i < snapshot.length()) {
+            int colon = snapshot.indexOf(':', i);
+            if (colon < 0) {
+                throw new IllegalArgumentException("Invalid snapshot");
+            }
+            String[] parts = snapshot.substring(i, colon).split(",");
+            if (parts.length != 6) {
+                throw new IllegalArgumentException("Invalid snapshot");
+            }
+            int length = Integer.parseInt(parts[4]);
+            boolean deleted = parts[5].equals("d");
+            i = colon + 1;
+            StringBuilder runText = null;
+            if (!deleted) {
+                if (i + length > snapshot.length()) {
+                    throw new IllegalArgumentException("Invalid snapshot");
+                }
+                runText = new StringBuilder(snapshot.substring(i, i + length));
+                i += length;
+                text.visibleLength += length;
+            }
+            Run run = new Run(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), length, runText);
+            text.linkAfter(last, run);
+            text.addToIndex(run);
+            text.clock = Math.max(text.clock, run.counter + length - 1);
+            last = run;
+        }
+        return text;
+    }
+
+    // Places a run after its origin using the RGA rule and returns its visible position
+    private int integrate(int opSite, int counter, int originSite, int originCounter, String text) {
+        Run origin = find(originSite, originCounter);
+        if (origin == null) {
+            throw new IllegalArgumentException("Unknown origin " + originSite + ":" + originCounter);
+        }
+        if (originCounter < origin.counter + origin.length - 1) {
+            split(origin, originCounter - origin.counter + 1);
+        }
+        // Concurrent inserts after the same origin are ordered by descending id
+        Run ref = origin;
+        while (ref.next != null && compareIds(ref.next.counter, ref.next.site, counter, opSite) > 0) {
+            ref = ref.next;
+        }
+
+        int length = text.length();
+        int position = positionOf(ref) + ref.visibleLength();
+        if (ref == origin && ref != head && !ref.isDeleted() && ref.site == opSite
+                && ref.counter + ref.length == counter) {
+            // Typing continues the run, so extend it instead of adding a new one
+            ref.text.append(text);
+            ref.length += length;
+        } else {
+            Run run = new Run(opSite, counter, originSite, originCounter, length, new StringBuilder(text));
+            linkAfter(ref, run);
+            addToIndex(run);
+        }
+        clock = Math.max(clock, counter + length - 1);
+        visibleLength += length;
+        return position;
+    }
+
+    private static int compareIds(int counter1, int site1, int counter2, int site2) {
+        if (counter1 != counter2) {
+            return Integer.compare(counter1, counter2);
+        }
+        return Integer.compare(site1, site2);
+    }
+
+    private Run find(int runSite, int counter) {
+        TreeMap<Integer, Run> runs = index.get(runSite);
+        if (runs == null) {
+            return null;
+        }
+        Map.Entry<Integer, Run> entry = runs.floorEntry(counter);
+        if (entry == null || counter >= entry.getValue().counter + entry.getValue().length) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    // Visible position of the first character of a run
+    private int positionOf(Run target) {
+        int position = 0;
+        for (Run run = head; run != target; run = run.next) {
+            position += run.visibleLength();
+        }
+        return position;
+    }
+
+    // Splits a run so that its first `at` characters stay in it, and returns the new right part
+    private Run split(Run run, int at) {
+        Run right = new Run(run.site, run.counter + at, run.site, run.counter + at - 1, run.length - at,
+                run.isDeleted() ? null : new StringBuilder(run.text.substring(at)));
+        if (!run.isDeleted()) {
+            run.text.setLength(at);
+            run.text.trimToSize();
+        }
+        run.length = at;
+        linkAfter(run, right);
+        addToIndex(right);
+        return right;
+    }
+
+    private void markDeleted(Run run) {
+        visibleLength -= run.length;
+        run.text = null;
+        mergeWithNext(run);
+        mergeWithNext(run.prev);
+    }
+
+    // Joins two neighbouring tombstones back into one when they were split from the same run
+    private void mergeWithNext(Run run) {
+        Run next = run.next;
+        if (run == head || next == null) {
+            return;
+        }
+        if (run.isDeleted() && next.isDeleted() && next.site == run.site
+                && next.counter == run.counter + run.length
+                && next.originSite == run.site && next.originCounter == run.counter + run.length - 1) {
+            run.length += next.length;
+            run.next = next.next;
+            if (next.next != null) {
+                next.next.prev = run;
+            }
+            index.get(next.site).remove(next.counter);
+        }
+    }
+
+    private void linkAfter(Run ref, Run run) {
+        run.prev = ref;
+        run.next = ref.next;
+        if (ref.next != null) {
+            ref.next.prev = run;
+        }
+        ref.next = run;
+    }
+
+    private void addToIndex(Run run) {
+        index.computeIfAbsent(run.site, s -> new TreeMap<>()).put(run.counter, run);
+    }
+}
@@ -0,0 +1,289 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// Inverted index over the content of every document. Edits only mark a document as dirty, and a
+// background task reindexes the dirty documents in batches so the edit path never waits on it.
+class SearchIndex {
+    static final long BATCH_DELAY_MS = Long.getLong("document.indexDelayMillis", 200);
+    private static final int SHARDS = 16;
+    private static final int SNIPPET_RADIUS = 40;
+
+    static class Result {
+        final String docId;
+        final double score;
+        final String snippet;
+
+        Result(String docId, double score, String snippet) {
+            this.docId = docId;
+            this.score = score;
+            this.snippet = snippet;
+        }
+    }
+
+    // Documents containing a term, sorted by document number
+    private static class Postings {
+        int[] docs = new int[2];
+        int[] freqs = new int[2];
+        int size;
+
+        void put(int doc, int freq) {
+            int i = Arrays.binarySearch(docs, 0, size, doc);
+            if (i >= 0) {
+                freqs[i] = freq;
+                return;
+            }
+            i = -i - 1;
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            System.arraycopy(docs, i, docs, i + 1, size - i);
+            System.arraycopy(freqs, i, freqs, i + 1, size - i);
+            docs[i] = doc;
+            freqs[i] = freq;
+            size++;
+        }
+
+        void remove(int doc) {
+            int i = Arrays.binarySearch(docs, 0, size, doc);
+            if (i >= 0) {
+                System.arraycopy(docs, i + 1, docs, i, size - i - 1);
+                System.arraycopy(freqs, i + 1, freqs, i, size - i - 1);
+                size--;
+            }
+        }
+    }
+
+    private static class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        final HashMap<String, Postings> terms = new HashMap<>();
+    }
+
+    // Terms last indexed for a document, needed to take it out of postings it no longer matches
+    private static class IndexedTerms {
+        final String[] terms;
+        final int[] freqs;
+
+        IndexedTerms(String[] terms, int[] freqs) {
+            this.terms = terms;
+            this.freqs = freqs;
+        }
+    }
+
+    private final Function<String, String> contentLookup;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final ConcurrentHashMap<String, Integer> docNumbers = new ConcurrentHashMap<>();
+    private final List<String> docIds = new ArrayList<>(); // Guarded by itself
+    private final ConcurrentHashMap<Integer, IndexedTerms> indexed = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService[] workers;
+
+    public SearchIndex(Function<String, String> contentLookup) {
+        this.contentLookup = contentLookup;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("index-scheduler"));
+        // A document always goes to the same worker, so its reindexing is never concurrent
+        workers = new ExecutorService[Math.max(1, Runtime.getRuntime().availableProcessors() / 2)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = Executors.newSingleThreadExecutor(daemonThreads("index-worker"));
+        }
+        scheduler.scheduleWithFixedDelay(this::reindexDirty, BATCH_DELAY_MS, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Called on the edit path, only records that the document has to be reindexed
+    public void markDirty(String docId) {
+        dirty.add(docId);
+    }
+
+    public List<Result> search(String query, int limit) {
+        Set<String> queryTerms = tokenize(query).keySet();
+        int docCount;
+        synchronized (docIds) {
+            docCount = docIds.size();
+        }
+        double[] scores = new double[docCount];
+        for (String term : queryTerms) {
+            Shard shard = shardFor(term);
+            int[] docs;
+            int[] freqs;
+            shard.lock.lock();
+            try {
+                Postings postings = shard.terms.get(term);
+                if (postings == null) {
+                    continue;
+                }
+                docs = Arrays.copyOf(postings.docs, postings.size);
+                freqs = Arrays.copyOf(postings.freqs, postings.size);
+            } finally {
+                shard.lock.unlock();
+            }
+            double idf = Math.log(1 + (double) docCount / docs.length);
+            for (int i = 0; i < docs.length; i++) {
+                if (docs[i] < docCount) {
+                    scores[docs[i]] += (1 + Math.log(freqs[i])) * idf;
+                }
+            }
+        }
+
+        List<Integer> matches = new ArrayList<>();
+        for (int doc = 0; doc < docCount; doc++) {
+            if (scores[doc] > 0) {
+                matches.add(doc);
+            }
+        }
+        matches.sort((a, b) -> Double.compare(scores[b], scores[a]));
+
+        List<Result> results = new ArrayList<>();
+        for (int doc : matches.subList(0, Math.min(limit, matches.size()))) {
+            String docId;
+            synchronized (docIds) {
+                docId = docIds.get(doc);
+            }
+            results.add(new Result(docId, scores[doc], snippet(contentLookup.apply(docId), queryTerms)));
+        }
+        return results;
+    }
+
+    private void reindexDirty() {
+        for (String docId : dirty) {
+            if (dirty.remove(docId)) {
+                int doc = docNumber(docId);
+                workers[doc % workers.length].execute(() -> reindex(docId, doc));
+            }
+        }
+    }
+
+    private void reindex(String docId, int doc) {
+        try {
+            String content = contentLookup.apply(docId);
+            Map<String, Integer> counts = tokenize(content == null ? "" : content);
+            IndexedTerms previous = indexed.get(doc);
+
+            // Group the changes by shard so each shard is locked once per document, 0 removes the doc
+            List<Map<String, Integer>> changes = new ArrayList<>();
+            for (int i = 0; i < SHARDS; i++) {
+                changes.add(new HashMap<>());
+            }
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                changes.get(shardIndex(entry.getKey())).put(entry.getKey(), entry.getValue());
+            }
+            if (previous != null) {
+                for (int i = 0; i < previous.terms.length; i++) {
+                    Map<String, Integer> shardChanges = changes.get(shardIndex(previous.terms[i]));
+                    Integer freq = shardChanges.get(previous.terms[i]);
+                    if (freq == null) {
+                        shardChanges.put(previous.terms[i], 0);
+                    } else if (freq == previous.freqs[i]) {
+                        shardChanges.remove(previous.terms[i]);
+                    }
+                }
+            }
+            for (int i = 0; i < SHARDS; i++) {
+                if (!changes.get(i).isEmpty()) {
+                    applyChanges(shards[i], doc, changes.get(i));
+                }
+            }
+
+            String[] terms = counts.keySet().toArray(new String[0]);
+            int[] freqs = new int[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                freqs[i] = counts.get(terms[i]);
+            }
+            indexed.put(doc, new IndexedTerms(terms, freqs));
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void applyChanges(Shard shard, int doc, Map<String, Integer> changes) {
+        shard.lock.lock();
+        try {
+            for (Map.Entry<String, Integer> change : changes.entrySet()) {
+                String term = change.getKey();
+                if (change.getValue() == 0) {
+                    Postings postings = shard.terms.get(term);
+                    if (postings != null) {
+                        postings.remove(doc);
+                        if (postings.size == 0) {
+                            shard.terms.remove(term);
+                        }
+                    }
+                } else {
+                    shard.terms.computeIfAbsent(term, t -> new Postings()).put(doc, change.getValue());
+                }
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private int docNumber(String docId) {
+        return docNumbers.computeIfAbsent(docId, id -> {
+            synchronized (docIds) {
+                docIds.add(id);
+                return docIds.size() - 1;
+            }
+        });
+    }
+
+    private Shard shardFor(String term) {
+        return shards[shardIndex(term)];
+    }
+
+    private static int shardIndex(String term) {
+        return (term.hashCode() & Integer.MAX_VALUE) % SHARDS;
+    }
+
+    // Lowercased runs of letters and digits with their number of occurrences
+    private static Map<String, Integer> tokenize(String text) {
+        Map<String, Integer> counts = new HashMap<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                counts.merge(text.substring(start, i).toLowerCase(Locale.ROOT), 1, Integer::sum);
+                start = -1;
+            }
+        }
+        return counts;
+    }
+
+    // Text around the first word of the content that matches a query term. Words are found the
+    // same way the tokenizer finds them, so offsets always refer to the original content.
+    private static String snippet(String content, Set<String> queryTerms) {
+        if (content == null) {
+            return "";
+        }
+        int match = -1;
+        int start = -1;
+        for (int i = 0; i <= content.length() && match < 0; i++) {
+            boolean wordChar = i < content.length() && Character.isLetterOrDigit(content.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (queryTerms.contains(content.substring(start, i).toLowerCase(Locale.ROOT))) {
+                    match = start;
+                }
+                start = -1;
+            }
+        }
+        int from = Math.max(0, match - SNIPPET_RADIUS);
+        int to = Math.min(content.length(), Math.max(match, 0) + SNIPPET_RADIUS);
+        return content.substring(from, to).replaceAll("\\s+", " ").trim();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+// Measures what write batching saves on a busy shared document: one editor's updates are sent to
+// every viewer over loopback, once per flush delay, and the socket writes and throughput compared.
+// Usage: java WriteBatchingBenchmark [viewers] [updates] [delay micros...]
+public class WriteBatchingBenchmark {
+    public static void main(String[] args) throws Exception {
+        int viewers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        long[] delays = {0, 500, 2000};
+        if (args.length > 2) {
+            delays = new long[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                delays[i - 2] = Long.parseLong(args[i]);
+            }
+        }
+        for (long delay : delays) {
+            run(viewers, updates, delay);
+        }
+    }
+
+    private static void run(int viewers, int updates, long flushDelayMicros) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            List<MessageWriter> writers = new ArrayList<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int i = 0; i < viewers; i++) {
+                Socket viewer = new Socket("localhost", serverSocket.getLocalPort());
+                Socket connection = serverSocket.accept();
+                Thread reader = new Thread(() -> readAll(viewer, updates));
+                reader.start();
+                readers.add(reader);
+                writers.add(new MessageWriter(connection.getOutputStream(), flushDelayMicros, MessageWriter.MAX_BATCH_BYTES));
+            }
+
+            String text = "x".repeat(400);
+            long start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                Message update = new Message(MessageType.UPDATE_CONTENT, "editor", text + i);
+                for (MessageWriter writer : writers) {
+                    writer.send(update);
+                }
+            }
+            for (MessageWriter writer : writers) {
+                writer.close();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long messages = 0;
+            long socketWrites = 0;
+            long bytes = 0;
+            for (MessageWriter writer : writers) {
+                messages += writer.getMessagesWritten();
+                socketWrites += writer.getSocketWrites();
+                bytes += writer.getBytesWritten();
+            }
+            System.out.printf("delay=%dus messages=%d socketWrites=%d bytes=%d messages/s=%.0f%n",
+                    flushDelayMicros, messages, socketWrites, bytes, messages / seconds);
+        }
+    }
+
+    private static void readAll(Socket viewer, int updates) {
+        try (ObjectInputStream input = new ObjectInputStream(viewer.getInputStream())) {
+            for (int i = 0; i < updates; i++) {
+                input.readObject();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+}